@@ -2,7 +2,11 @@ import tester.*;
 import javalib.worldimages.*;
 import javalib.funworld.*;
 import java.awt.Color;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.function.Function;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 // Represents a fish in the game
 abstract class AFish {
@@ -28,10 +32,11 @@ abstract class AFish {
     return this.size > other.size;
   }
 
-  // Is this fish touching the other fish based on distance between centers?
-  boolean isTouching(AFish other) {
-    double distance = Math.sqrt(Math.pow(this.x - other.x, 2) + Math.pow(this.y - other.y, 2));
-    return distance < (this.size + other.size) / 2;
+  // Is this fish touching a circle of the given size whose center is offset from this fish's
+  // center by (offsetX, offsetY)?
+  boolean isTouching(double offsetX, double offsetY, int otherSize) {
+    double distance = Math.sqrt(offsetX * offsetX + offsetY * offsetY);
+    return distance < (this.size + otherSize) / 2;
   }
 }
 
@@ -42,6 +47,10 @@ class PlayerFish extends AFish {
   double acceleration;
   double maxSpeed;
   int speedBoostTimer;
+  // How far this fish actually moved on its last tick, in whole pixels, for swept collision
+  // checks
+  int stepX;
+  int stepY;
 
   // Constructor for new player fish at given position and size
   PlayerFish(int x, int y, int size) {
@@ -51,16 +60,26 @@ class PlayerFish extends AFish {
     this.acceleration = 0.8;
     this.maxSpeed = 8.0;
     this.speedBoostTimer = 0;
+    this.stepX = 0;
+    this.stepY = 0;
   }
 
   // Constructor with full velocity and boost state
   PlayerFish(int x, int y, int size, double vx, double vy, int speedBoostTimer) {
+    this(x, y, size, vx, vy, speedBoostTimer, 0, 0);
+  }
+
+  // Constructor with full velocity, boost state and last step
+  PlayerFish(int x, int y, int size, double vx, double vy, int speedBoostTimer, int stepX,
+      int stepY) {
     super(x, y, size, Color.ORANGE);
     this.velocityX = vx;
     this.velocityY = vy;
     this.acceleration = 0.8;
     this.maxSpeed = 8.0;
     this.speedBoostTimer = speedBoostTimer;
+    this.stepX = stepX;
+    this.stepY = stepY;
   }
 
   // Calculate inertia factor based on size - bigger fish have more inertia
@@ -97,7 +116,8 @@ class PlayerFish extends AFish {
     newVx = Math.max(-currentMaxSpeed, Math.min(currentMaxSpeed, newVx));
     newVy = Math.max(-currentMaxSpeed, Math.min(currentMaxSpeed, newVy));
 
-    return new PlayerFish(this.x, this.y, this.size, newVx, newVy, this.speedBoostTimer);
+    return new PlayerFish(this.x, this.y, this.size, newVx, newVy, this.speedBoostTimer,
+        this.stepX, this.stepY);
   }
 
   // Move the fish based on current velocity, applying inertia
@@ -118,7 +138,8 @@ class PlayerFish extends AFish {
     int newY = (int) (this.y + newVy);
     int newBoostTimer = Math.max(0, this.speedBoostTimer - 1);
 
-    return new PlayerFish(newX, newY, this.size, newVx, newVy, newBoostTimer);
+    return new PlayerFish(newX, newY, this.size, newVx, newVy, newBoostTimer, newX - this.x,
+        newY - this.y);
   }
 
   // Wrap the fish around screen edges for continuous play area
@@ -140,18 +161,36 @@ class PlayerFish extends AFish {
     }
 
     return new PlayerFish(newX, newY, this.size, this.velocityX, this.velocityY,
-        this.speedBoostTimer);
+        this.speedBoostTimer, this.stepX, this.stepY);
+  }
+
+  // Did this fish touch a circle of the given size at any point during the last tick? This
+  // fish moved by (stepX, stepY) and the other circle by (otherStepX, otherStepY), ending at
+  // (otherX, otherY). Sweeping their relative motion means fast moves cannot pass over small
+  // fish and snacks the way end-of-tick checks can
+  boolean sweptTouching(int otherX, int otherY, int otherSize, int otherStepX, int otherStepY) {
+    int startX = (this.x - this.stepX) - (otherX - otherStepX);
+    int startY = (this.y - this.stepY) - (otherY - otherStepY);
+    int moveX = this.stepX - otherStepX;
+    int moveY = this.stepY - otherStepY;
+    double lengthSq = moveX * moveX + moveY * moveY;
+    double t = 1;
+    if (lengthSq > 0) {
+      t = Math.max(0, Math.min(1, -(startX * moveX + startY * moveY) / lengthSq));
+    }
+    return this.isTouching(startX + t * moveX, startY + t * moveY, otherSize);
   }
 
   // Grow the player fish by the given amount
   PlayerFish grow(int amount) {
     return new PlayerFish(this.x, this.y, this.size + amount, this.velocityX, this.velocityY,
-        this.speedBoostTimer);
+        this.speedBoostTimer, this.stepX, this.stepY);
   }
 
   // Apply a temporary speed boost to this fish
   PlayerFish applySpeedBoost() {
-    return new PlayerFish(this.x, this.y, this.size, this.velocityX, this.velocityY, 300);
+    return new PlayerFish(this.x, this.y, this.size, this.velocityX, this.velocityY, 300,
+        this.stepX, this.stepY);
   }
 
   // Draw the player fish with color based on boost state
@@ -166,39 +205,179 @@ class PlayerFish extends AFish {
 class BackgroundFish extends AFish {
   int speed;
   boolean movingRight;
+  // How far this fish moved on its last tick, for swept collision checks
+  int stepX;
+  int stepY;
 
+  // Constructor for a fish that has not moved yet
   BackgroundFish(int x, int y, int size, Color color, int speed, boolean movingRight) {
+    this(x, y, size, color, speed, movingRight, 0, 0);
+  }
+
+  // Constructor with the fish's last step
+  BackgroundFish(int x, int y, int size, Color color, int speed, boolean movingRight, int stepX,
+      int stepY) {
     super(x, y, size, color);
     this.speed = speed;
     this.movingRight = movingRight;
+    this.stepX = stepX;
+    this.stepY = stepY;
   }
 
   // Move this fish horizontally based on its direction
   BackgroundFish move() {
     if (this.movingRight) {
       return new BackgroundFish(this.x + this.speed, this.y, this.size, this.color, this.speed,
-          this.movingRight);
+          this.movingRight, this.speed, this.stepY);
     }
     else {
       return new BackgroundFish(this.x - this.speed, this.y, this.size, this.color, this.speed,
-          this.movingRight);
+          this.movingRight, -this.speed, this.stepY);
+    }
+  }
+
+  // Steer by the flow field around this fish: weigh each neighbouring cell by how attractive
+  // it is, drift up or down toward the better side and turn around if it lies behind. In the
+  // fish's own cell it heads straight toward the food there and away from the threat there
+  BackgroundFish steer(FlowField field) {
+    int col = field.colOf(this.x);
+    int row = field.rowOf(this.y);
+    int pullX = 0;
+    int pullY = 0;
+
+    for (int r = row - 1; r <= row + 1; r++) {
+      for (int c = col - 1; c <= col + 1; c++) {
+        if (field.inBounds(c, r)) {
+          int i = field.index(c, r);
+          if (c == col && r == row) {
+            if (field.hasFood(i, this.size)) {
+              pullX += Integer.signum(field.smallestX[i] - this.x);
+              pullY += Integer.signum(field.smallestY[i] - this.y);
+            }
+            if (field.hasThreat(i, this.size)) {
+              pullX -= 2 * Integer.signum(field.largestX[i] - this.x);
+              pullY -= 2 * Integer.signum(field.largestY[i] - this.y);
+            }
+          }
+          else {
+            int potential = field.potential(c, r, this.size);
+            pullX += potential * (c - col);
+            pullY += potential * (r - row);
+          }
+        }
+      }
+    }
+
+    int newY = Math.max(0,
+        Math.min(field.height, this.y + Integer.signum(pullY) * this.speed));
+    boolean newMovingRight = this.movingRight;
+    if (pullX > 0) {
+      newMovingRight = true;
+    }
+    else if (pullX < 0) {
+      newMovingRight = false;
     }
+    return new BackgroundFish(this.x, newY, this.size, this.color, this.speed, newMovingRight,
+        this.stepX, newY - this.y);
   }
 
   // Wrap this fish around horizontal screen edges
   BackgroundFish wrapAround(int width) {
     if (this.movingRight && this.x > width + this.size) {
       return new BackgroundFish(-this.size, this.y, this.size, this.color, this.speed,
-          this.movingRight);
+          this.movingRight, this.stepX, this.stepY);
     }
     else if (!this.movingRight && this.x < -this.size) {
       return new BackgroundFish(width + this.size, this.y, this.size, this.color, this.speed,
-          this.movingRight);
+          this.movingRight, this.stepX, this.stepY);
     }
     return this;
   }
 }
 
+// A coarse grid over the pond recording the largest and smallest fish in each cell and where
+// they are, rebuilt once per tick so that every background fish can steer by looking only at
+// nearby cells
+class FlowField {
+  int width;
+  int height;
+  int cellSize;
+  int cols;
+  int rows;
+  int[] largest;
+  int[] largestX;
+  int[] largestY;
+  int[] smallest;
+  int[] smallestX;
+  int[] smallestY;
+
+  FlowField(int width, int height, int cellSize) {
+    this.width = width;
+    this.height = height;
+    this.cellSize = cellSize;
+    this.cols = width / cellSize + 1;
+    this.rows = height / cellSize + 1;
+    this.largest = new int[this.cols * this.rows];
+    this.largestX = new int[this.cols * this.rows];
+    this.largestY = new int[this.cols * this.rows];
+    this.smallest = new int[this.cols * this.rows];
+    this.smallestX = new int[this.cols * this.rows];
+    this.smallestY = new int[this.cols * this.rows];
+  }
+
+  // Column of the cell containing x, clamped to the grid
+  int colOf(int x) {
+    return Math.max(0, Math.min(this.cols - 1, x / this.cellSize));
+  }
+
+  // Row of the cell containing y, clamped to the grid
+  int rowOf(int y) {
+    return Math.max(0, Math.min(this.rows - 1, y / this.cellSize));
+  }
+
+  // Index of the given cell in the grid's arrays
+  int index(int col, int row) {
+    return row * this.cols + col;
+  }
+
+  // Is the given cell inside the grid?
+  boolean inBounds(int col, int row) {
+    return col >= 0 && col < this.cols && row >= 0 && row < this.rows;
+  }
+
+  // Record a fish in the cell containing its position
+  void mark(AFish fish) {
+    int i = this.index(this.colOf(fish.x), this.rowOf(fish.y));
+    if (fish.size > this.largest[i]) {
+      this.largest[i] = fish.size;
+      this.largestX[i] = fish.x;
+      this.largestY[i] = fish.y;
+    }
+    if (this.smallest[i] == 0 || fish.size < this.smallest[i]) {
+      this.smallest[i] = fish.size;
+      this.smallestX[i] = fish.x;
+      this.smallestY[i] = fish.y;
+    }
+  }
+
+  // Does the cell at index i hold something a fish of the given size can eat?
+  boolean hasFood(int i, int size) {
+    return this.smallest[i] > 0 && this.smallest[i] < size;
+  }
+
+  // Does the cell at index i hold something that can eat a fish of the given size?
+  boolean hasThreat(int i, int size) {
+    return this.largest[i] > size;
+  }
+
+  // How attractive the cell is to a fish of the given size: +1 for something it can eat,
+  // -2 for something that can eat it
+  int potential(int col, int row, int size) {
+    int i = this.index(col, row);
+    return (this.hasFood(i, size) ? 1 : 0) - (this.hasThreat(i, size) ? 2 : 0);
+  }
+}
+
 // Abstract class representing a special power-up snack
 abstract class Snack {
   int x;
@@ -212,12 +391,6 @@ abstract class Snack {
 
   // Draw this snack with its specific appearance
   abstract WorldImage draw();
-
-  // Check if this snack is touching the given player
-  boolean isTouching(PlayerFish player) {
-    double distance = Math.sqrt(Math.pow(this.x - player.x, 2) + Math.pow(this.y - player.y, 2));
-    return distance < (this.size + player.size) / 2;
-  }
 }
 
 // Size snack that provides instant growth when collected
@@ -268,20 +441,68 @@ interface ILoFish {
 
   // Count the total number of fish in this list
   int count();
+
+  // Copy the fish in this list into an array, in list order
+  BackgroundFish[] toArray();
+
+  // Add the given fish to the front of this list, keeping their order
+  ILoFish addAll(BackgroundFish[] fish);
 }
 
-// Empty list of fish
-class MtLoFish implements ILoFish {
-  // Move all fish in empty list (returns empty list)
+// Operations shared by all lists of fish. Ponds can hold tens of thousands of fish, far deeper
+// than the stack allows for recursion, so whole-list operations copy the list into an array in
+// a single loop and work on that
+abstract class ALoFish implements ILoFish {
+  // Copy the fish in this list into an array, in list order
+  public BackgroundFish[] toArray() {
+    BackgroundFish[] arr = new BackgroundFish[16];
+    int n = 0;
+    for (ILoFish l = this; l instanceof ConsLoFish; l = ((ConsLoFish) l).rest) {
+      if (n == arr.length) {
+        arr = Arrays.copyOf(arr, n * 2);
+      }
+      arr[n] = ((ConsLoFish) l).first;
+      n++;
+    }
+    return Arrays.copyOf(arr, n);
+  }
+
+  // Count the total number of fish in this list
+  public int count() {
+    return this.toArray().length;
+  }
+
+  // Add the given fish to the front of this list, one at a time from the last
+  public ILoFish addAll(BackgroundFish[] fish) {
+    ILoFish result = this;
+    for (int i = fish.length - 1; i >= 0; i--) {
+      result = result.add(fish[i]);
+    }
+    return result;
+  }
+
+  // Apply the given function to every fish in this list, keeping their order
+  ILoFish mapAll(Function<BackgroundFish, BackgroundFish> func) {
+    BackgroundFish[] fish = this.toArray();
+    for (int i = 0; i < fish.length; i++) {
+      fish[i] = func.apply(fish[i]);
+    }
+    return new MtLoFish().addAll(fish);
+  }
+
+  // Move every fish in this list one step
   public ILoFish moveAll() {
-    return this;
+    return this.mapAll(f -> f.move());
   }
 
-  // Wrap all fish in empty list (returns empty list)
+  // Wrap every fish in this list around the screen width
   public ILoFish wrapAll(int width) {
-    return this;
+    return this.mapAll(f -> f.wrapAround(width));
   }
+}
 
+// Empty list of fish
+class MtLoFish extends ALoFish {
   // Draw all fish in empty list (returns unchanged scene)
   public WorldScene drawAll(WorldScene scene) {
     return scene;
@@ -301,15 +522,10 @@ class MtLoFish implements ILoFish {
   public int countSmallerThan(int size) {
     return 0;
   }
-
-  // Count total fish in empty list (always 0)
-  public int count() {
-    return 0;
-  }
 }
 
 // Non-empty list of fish
-class ConsLoFish implements ILoFish {
+class ConsLoFish extends ALoFish {
   BackgroundFish first;
   ILoFish rest;
 
@@ -318,37 +534,45 @@ class ConsLoFish implements ILoFish {
     this.rest = rest;
   }
 
-  // Move all fish by moving first and recursively moving rest
-  public ILoFish moveAll() {
-    return new ConsLoFish(this.first.move(), this.rest.moveAll());
-  }
-
-  // Wrap all fish by wrapping first and recursively wrapping rest
-  public ILoFish wrapAll(int width) {
-    return new ConsLoFish(this.first.wrapAround(width), this.rest.wrapAll(width));
-  }
-
-  // Draw all fish by drawing first then recursively drawing rest
+  // Draw every fish in this list, first to last
   public WorldScene drawAll(WorldScene scene) {
-    return this.rest.drawAll(scene.placeImageXY(this.first.draw(), this.first.x, this.first.y));
+    WorldScene result = scene;
+    for (BackgroundFish f : this.toArray()) {
+      result = result.placeImageXY(f.draw(), f.x, f.y);
+    }
+    return result;
   }
 
-  // Check collisions with first fish, then recursively check rest
+  // Check each fish in order against the player, which grows as it eats. If a bigger fish
+  // eats the player, that fish and every fish after it are left unchecked
   public CollisionResult checkCollisions(PlayerFish player) {
-    if (player.isTouching(this.first)) {
-      if (player.canEat(this.first)) {
-        CollisionResult restResult = this.rest.checkCollisions(player.grow(this.first.size / 5));
-        return new CollisionResult(restResult.player, restResult.remainingFish,
-            restResult.playerDied, restResult.pointsGained + this.first.size * 2);
-      }
-      else if (this.first.canEat(player)) {
-        return new CollisionResult(player, this, true, 0);
+    BackgroundFish[] fish = this.toArray();
+    BackgroundFish[] remaining = new BackgroundFish[fish.length];
+    int kept = 0;
+    PlayerFish current = player;
+    int points = 0;
+
+    for (int i = 0; i < fish.length; i++) {
+      BackgroundFish f = fish[i];
+      if (current.sweptTouching(f.x, f.y, f.size, f.stepX, f.stepY)) {
+        if (current.canEat(f)) {
+          current = current.grow(f.size / 5);
+          points += f.size * 2;
+          continue;
+        }
+        else if (f.canEat(current)) {
+          System.arraycopy(fish, i, remaining, kept, fish.length - i);
+          return new CollisionResult(current,
+              new MtLoFish().addAll(Arrays.copyOf(remaining, kept + fish.length - i)), true,
+              points);
+        }
       }
+      remaining[kept] = f;
+      kept++;
     }
-    CollisionResult restResult = this.rest.checkCollisions(player);
-    return new CollisionResult(restResult.player,
-        new ConsLoFish(this.first, restResult.remainingFish), restResult.playerDied,
-        restResult.pointsGained);
+
+    return new CollisionResult(current, new MtLoFish().addAll(Arrays.copyOf(remaining, kept)),
+        false, points);
   }
 
   // Add a fish to the front of this list
@@ -356,19 +580,51 @@ class ConsLoFish implements ILoFish {
     return new ConsLoFish(fish, this);
   }
 
-  // Count fish smaller than size, including first if applicable
+  // Count fish smaller than the given size
   public int countSmallerThan(int size) {
-    if (this.first.size < size) {
-      return 1 + this.rest.countSmallerThan(size);
-    }
-    else {
-      return this.rest.countSmallerThan(size);
+    int n = 0;
+    for (BackgroundFish f : this.toArray()) {
+      if (f.size < size) {
+        n++;
+      }
     }
+    return n;
   }
+}
 
-  // Count total fish including first plus rest
-  public int count() {
-    return 1 + this.rest.count();
+// Applies an update to a range of fish in place, splitting large ranges in half across a
+// fork-join pool. Each fish is written back to its own index, so the result is the same for
+// any pool size
+class UpdateFishRange extends RecursiveAction {
+  static final long serialVersionUID = 1L;
+  // Ranges this small are updated directly rather than split further
+  static final int GRAIN = 1024;
+
+  BackgroundFish[] fish;
+  int lo;
+  int hi;
+  Function<BackgroundFish, BackgroundFish> update;
+
+  UpdateFishRange(BackgroundFish[] fish, int lo, int hi,
+      Function<BackgroundFish, BackgroundFish> update) {
+    this.fish = fish;
+    this.lo = lo;
+    this.hi = hi;
+    this.update = update;
+  }
+
+  // Update the range directly if it is small enough, otherwise split it and update both halves
+  protected void compute() {
+    if (this.hi - this.lo <= GRAIN) {
+      for (int i = this.lo; i < this.hi; i++) {
+        this.fish[i] = this.update.apply(this.fish[i]);
+      }
+    }
+    else {
+      int mid = (this.lo + this.hi) / 2;
+      invokeAll(new UpdateFishRange(this.fish, this.lo, mid, this.update),
+          new UpdateFishRange(this.fish, mid, this.hi, this.update));
+    }
   }
 }
 
@@ -434,7 +690,7 @@ class ConsLoSnack implements ILoSnack {
 
   // Check if player collected first snack, then check rest
   public SnackResult checkSnacks(PlayerFish player) {
-    if (this.first.isTouching(player)) {
+    if (player.sweptTouching(this.first.x, this.first.y, this.first.size, 0, 0)) {
       if (this.first instanceof SizeSnack) {
         SnackResult restResult = this.rest.checkSnacks(player.grow(10));
         return new SnackResult(restResult.player, restResult.remainingSnacks,
@@ -474,6 +730,10 @@ class SnackResult {
 class FeedingFrenzyWorld extends World {
   int width = 800;
   int height = 600;
+  // Number of fish at which onTick moves the fish in parallel instead of one at a time
+  int parallelThreshold = 10000;
+  // Side length in pixels of the flow field cells that background fish steer by
+  int cellSize = 50;
 
   PlayerFish player;
   ILoFish backgroundFish;
@@ -519,6 +779,13 @@ class FeedingFrenzyWorld extends World {
     this.lives = lives;
   }
 
+  // Constructor with all fields and a custom threshold for parallel fish updates
+  FeedingFrenzyWorld(PlayerFish player, ILoFish fish, ILoSnack snacks, Random rand, int tickCount,
+      boolean gameOver, boolean won, int score, int lives, int parallelThreshold) {
+    this(player, fish, snacks, rand, tickCount, gameOver, won, score, lives);
+    this.parallelThreshold = parallelThreshold;
+  }
+
   // Initialize the world with n random fish
   ILoFish initializeFish(int n) {
     if (n <= 0) {
@@ -559,11 +826,45 @@ class FeedingFrenzyWorld extends World {
     if (!this.gameOver
         && (key.equals("up") || key.equals("down") || key.equals("left") || key.equals("right"))) {
       return new FeedingFrenzyWorld(this.player.updateVelocity(key), this.backgroundFish,
-          this.snacks, this.rand, this.tickCount, this.gameOver, this.won, this.score, this.lives);
+          this.snacks, this.rand, this.tickCount, this.gameOver, this.won, this.score, this.lives,
+          this.parallelThreshold);
     }
     return this;
   }
 
+  // Build this tick's flow field from the given player and every background fish
+  FlowField buildFlowField(BackgroundFish[] fish, PlayerFish player) {
+    FlowField field = new FlowField(width, height, this.cellSize);
+    field.mark(player);
+    for (BackgroundFish f : fish) {
+      field.mark(f);
+    }
+    return field;
+  }
+
+  // Apply the given update to every fish in the array, on the pool once there are enough fish
+  void updateFish(BackgroundFish[] fish, Function<BackgroundFish, BackgroundFish> update,
+      ForkJoinPool pool) {
+    if (fish.length < this.parallelThreshold) {
+      for (int i = 0; i < fish.length; i++) {
+        fish[i] = update.apply(fish[i]);
+      }
+    }
+    else {
+      pool.invoke(new UpdateFishRange(fish, 0, fish.length, update));
+    }
+  }
+
+  // Move and wrap all background fish, then steer them by a flow field built from their new
+  // positions and the given, already moved, player
+  ILoFish moveFish(PlayerFish player, ForkJoinPool pool) {
+    BackgroundFish[] fish = this.backgroundFish.toArray();
+    this.updateFish(fish, f -> f.move().wrapAround(this.width), pool);
+    FlowField field = this.buildFlowField(fish, player);
+    this.updateFish(fish, f -> f.steer(field), pool);
+    return new MtLoFish().addAll(fish);
+  }
+
   // Update the world state on each tick of the game
   public World onTick() {
     if (this.gameOver) {
@@ -572,7 +873,7 @@ class FeedingFrenzyWorld extends World {
 
     PlayerFish movedPlayer = this.player.moveWithInertia().wrapAround(width, height);
 
-    ILoFish movedFish = this.backgroundFish.moveAll().wrapAll(width);
+    ILoFish movedFish = this.moveFish(movedPlayer, ForkJoinPool.commonPool());
 
     SnackResult snackResult = this.snacks.checkSnacks(movedPlayer);
 
@@ -583,12 +884,14 @@ class FeedingFrenzyWorld extends World {
         return new FeedingFrenzyWorld(new PlayerFish(width / 2, height / 2, 20),
             collisionResult.remainingFish, snackResult.remainingSnacks, this.rand,
             this.tickCount + 1, false, false,
-            this.score + snackResult.pointsGained + collisionResult.pointsGained, this.lives - 1);
+            this.score + snackResult.pointsGained + collisionResult.pointsGained, this.lives - 1,
+            this.parallelThreshold);
       }
       else {
         return new FeedingFrenzyWorld(collisionResult.player, collisionResult.remainingFish,
             snackResult.remainingSnacks, this.rand, this.tickCount + 1, true, false,
-            this.score + snackResult.pointsGained + collisionResult.pointsGained, this.lives);
+            this.score + snackResult.pointsGained + collisionResult.pointsGained, this.lives,
+            this.parallelThreshold);
       }
     }
 
@@ -607,7 +910,8 @@ class FeedingFrenzyWorld extends World {
 
     return new FeedingFrenzyWorld(collisionResult.player, newFishList, newSnackList, this.rand,
         this.tickCount + 1, hasWon, hasWon,
-        this.score + snackResult.pointsGained + collisionResult.pointsGained, this.lives);
+        this.score + snackResult.pointsGained + collisionResult.pointsGained, this.lives,
+        this.parallelThreshold);
   }
 
   // Draw the current game scene
@@ -663,6 +967,86 @@ class FeedingFrenzyWorld extends World {
   }
 }
 
+// Times the parallel fish update on a large pond for 1 up to all available cores. Only the
+// pool.invoke steps are timed as the parallel part; copying the list into an array, building
+// the flow field and rebuilding the list run on one thread and are reported separately.
+// Everything is warmed up once before any timing so every core count runs on compiled code,
+// and each row reports the median of several runs
+class BenchmarkFeedingFrenzy {
+  static final int WARMUP_TICKS = 200;
+  static final int TICKS_PER_RUN = 20;
+  static final int RUNS = 7;
+
+  public static void main(String[] args) {
+    int fishCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    int cores = Runtime.getRuntime().availableProcessors();
+
+    FeedingFrenzyWorld seeded = new FeedingFrenzyWorld(new Random(7));
+    ILoFish pond = new MtLoFish();
+    for (int i = 0; i < fishCount; i++) {
+      pond = pond.add(seeded.makeRandomFish());
+    }
+    FeedingFrenzyWorld world = new FeedingFrenzyWorld(new PlayerFish(400, 300, 20), pond,
+        new MtLoSnack(), new Random(7), 0, false, false, 0, 3, 1);
+    BackgroundFish[] fish = world.backgroundFish.toArray();
+    FlowField field = world.buildFlowField(fish, world.player);
+
+    ForkJoinPool warmupPool = new ForkJoinPool(cores);
+    for (int i = 0; i < WARMUP_TICKS; i++) {
+      serialTick(world);
+      parallelTick(warmupPool, fish, field, world.width);
+    }
+    warmupPool.shutdown();
+
+    long[] serialRuns = new long[RUNS];
+    for (int run = 0; run < RUNS; run++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < TICKS_PER_RUN; i++) {
+        serialTick(world);
+      }
+      serialRuns[run] = (System.nanoTime() - start) / 1000 / TICKS_PER_RUN;
+    }
+    System.out.println(fishCount + " fish, serial copy/field/rebuild: " + median(serialRuns)
+        + " us/tick");
+
+    for (int n = 1; n <= cores; n++) {
+      ForkJoinPool pool = new ForkJoinPool(n);
+      long[] runs = new long[RUNS];
+      for (int run = 0; run < RUNS; run++) {
+        long start = System.nanoTime();
+        for (int i = 0; i < TICKS_PER_RUN; i++) {
+          parallelTick(pool, fish, field, world.width);
+        }
+        runs[run] = (System.nanoTime() - start) / 1000 / TICKS_PER_RUN;
+      }
+      System.out.println(fishCount + " fish, " + n + " cores, parallel update: " + median(runs)
+          + " us/tick");
+      pool.shutdown();
+    }
+  }
+
+  // Run the two parallel passes of a tick: move and wrap, then steer
+  static void parallelTick(ForkJoinPool pool, BackgroundFish[] fish, FlowField field,
+      int width) {
+    pool.invoke(new UpdateFishRange(fish, 0, fish.length, f -> f.move().wrapAround(width)));
+    pool.invoke(new UpdateFishRange(fish, 0, fish.length, f -> f.steer(field)));
+  }
+
+  // Run the single-threaded part of a parallel tick: copy, build the field and rebuild
+  static void serialTick(FeedingFrenzyWorld world) {
+    BackgroundFish[] source = world.backgroundFish.toArray();
+    world.buildFlowField(source, world.player);
+    new MtLoFish().addAll(source);
+  }
+
+  // The median of the given run times
+  static long median(long[] runs) {
+    long[] sorted = Arrays.copyOf(runs, runs.length);
+    Arrays.sort(sorted);
+    return sorted[sorted.length / 2];
+  }
+}
+
 // Examples and tests for the Feeding Frenzy game
 class ExamplesFeedingFrenzy {
   Random testRand = new Random(42);
@@ -715,6 +1099,190 @@ class ExamplesFeedingFrenzy {
         && t.checkExpect(p.color, Color.ORANGE);
   }
 
+  // Test that moving fish in parallel, split across several tasks, gives the same fish as
+  // moving them one at a time
+  boolean testParallelMoveFish(Tester t) {
+    FeedingFrenzyWorld seeded = new FeedingFrenzyWorld(new Random(7));
+    ILoFish fish = new MtLoFish();
+    for (int i = 0; i < UpdateFishRange.GRAIN * 3; i++) {
+      fish = fish.add(seeded.makeRandomFish());
+    }
+    FeedingFrenzyWorld sequential = new FeedingFrenzyWorld(player1, fish, new MtLoSnack(),
+        new Random(7), 0, false, false, 0, 3);
+    FeedingFrenzyWorld parallel = new FeedingFrenzyWorld(player1, fish, new MtLoSnack(),
+        new Random(7), 0, false, false, 0, 3, 1);
+    ForkJoinPool onePool = new ForkJoinPool(1);
+    ForkJoinPool fourPool = new ForkJoinPool(4);
+    BackgroundFish[] expected = sequential.moveFish(player1, onePool).toArray();
+    BackgroundFish[] onOne = parallel.moveFish(player1, onePool).toArray();
+    BackgroundFish[] onFour = parallel.moveFish(player1, fourPool).toArray();
+    onePool.shutdown();
+    fourPool.shutdown();
+    return t.checkExpect(onOne, expected) && t.checkExpect(onFour, expected);
+  }
+
+  // Test that collisions keep the uneaten fish in order and stop checking once the player dies
+  boolean testCollisionOrder(Tester t) {
+    BackgroundFish snack = new BackgroundFish(100, 100, 10, Color.RED, 1, true);
+    BackgroundFish faraway = new BackgroundFish(500, 500, 10, Color.BLUE, 1, true);
+    BackgroundFish shark = new BackgroundFish(105, 100, 40, Color.GRAY, 1, true);
+    BackgroundFish after = new BackgroundFish(100, 100, 5, Color.GREEN, 1, true);
+    ILoFish fish = new MtLoFish().add(after).add(shark).add(faraway).add(snack);
+    CollisionResult result = fish.checkCollisions(new PlayerFish(100, 100, 20));
+    return t.checkExpect(result.playerDied, true)
+        && t.checkExpect(result.player.size, 22)
+        && t.checkExpect(result.pointsGained, 20)
+        && t.checkExpect(result.remainingFish,
+            new MtLoFish().add(after).add(shark).add(faraway));
+  }
+
+  // Test that a whole tick and a redraw run on a pond of 100,000 fish, above the parallel
+  // threshold, without overflowing the stack
+  boolean testLargePondTick(Tester t) {
+    FeedingFrenzyWorld seeded = new FeedingFrenzyWorld(new Random(7));
+    ILoFish fish = new MtLoFish();
+    for (int i = 0; i < 100000; i++) {
+      fish = fish.add(seeded.makeRandomFish());
+    }
+    FeedingFrenzyWorld world = new FeedingFrenzyWorld(new PlayerFish(400, 300, 20), fish,
+        new MtLoSnack(), new Random(7), 0, false, false, 0, 3);
+    FeedingFrenzyWorld next = (FeedingFrenzyWorld) world.onTick();
+    next.makeScene();
+    // Every fish starts just off the left or right edge, far from the player in the middle, so
+    // none is eaten, the player survives, and no fish spawns on tick 1
+    return t.checkExpect(next.tickCount, 1)
+        && t.checkExpect(next.backgroundFish.count(), 100000)
+        && t.checkExpect(next.lives, 3)
+        && t.checkExpect(next.gameOver, false);
+  }
+
+  // Steer the given fish by a field holding it and one other fish
+  BackgroundFish steerNear(BackgroundFish fish, BackgroundFish other) {
+    FlowField field = new FlowField(800, 600, 50);
+    field.mark(fish);
+    field.mark(other);
+    return fish.steer(field);
+  }
+
+  // Test that a fish reacts to where a bigger or smaller fish in its own cell actually is
+  boolean testSteerSameCell(Tester t) {
+    BackgroundFish shark = new BackgroundFish(105, 105, 40, Color.RED, 1, false);
+    BackgroundFish awayFromShark = steerNear(
+        new BackgroundFish(120, 120, 10, Color.BLUE, 2, false), shark);
+    BackgroundFish towardCentreThreat = steerNear(
+        new BackgroundFish(110, 110, 10, Color.BLUE, 2, true),
+        new BackgroundFish(120, 118, 40, Color.RED, 1, false));
+    BackgroundFish onCentre = steerNear(new BackgroundFish(125, 125, 10, Color.BLUE, 2, true),
+        new BackgroundFish(135, 135, 40, Color.RED, 1, false));
+    BackgroundFish chasing = steerNear(new BackgroundFish(130, 130, 40, Color.GRAY, 1, false),
+        new BackgroundFish(145, 145, 10, Color.BLUE, 1, true));
+    return t.checkExpect(awayFromShark.y, 122) && t.checkExpect(awayFromShark.movingRight, true)
+        && t.checkExpect(towardCentreThreat.y, 108)
+        && t.checkExpect(towardCentreThreat.movingRight, false)
+        && t.checkExpect(onCentre.y, 123) && t.checkExpect(onCentre.movingRight, false)
+        && t.checkExpect(chasing.y, 131) && t.checkExpect(chasing.movingRight, true);
+  }
+
+  // Test that a tick moves fish first and steers them by where everything ended up
+  boolean testMoveFishSteersAfterMoving(Tester t) {
+    BackgroundFish fish = new BackgroundFish(121, 125, 10, Color.BLUE, 2, true);
+    ILoFish pond = new MtLoFish().add(fish);
+    FeedingFrenzyWorld world = new FeedingFrenzyWorld(player1, pond, new MtLoSnack(),
+        new Random(7), 0, false, false, 0, 3);
+    // After moving to x = 123 the fish shares a cell with a shark at (140, 140) and flees up-left
+    BackgroundFish moved = world.moveFish(new PlayerFish(140, 140, 40), new ForkJoinPool(1))
+        .toArray()[0];
+    return t.checkExpect(moved.x, 123) && t.checkExpect(moved.y, 123)
+        && t.checkExpect(moved.movingRight, false) && t.checkExpect(moved.stepX, 2)
+        && t.checkExpect(moved.stepY, -2);
+  }
+
+  // Test that the flow field records the largest and smallest fish in each cell
+  boolean testFlowFieldMark(Tester t) {
+    FlowField field = new FlowField(800, 600, 50);
+    field.mark(bg1);
+    field.mark(new BackgroundFish(60, 60, 30, Color.BLUE, 1, true));
+    return t.checkExpect(field.largest[field.cols + 1], 30)
+        && t.checkExpect(field.smallest[field.cols + 1], 15)
+        && t.checkExpect(field.potential(1, 1, 20), -1)
+        && t.checkExpect(field.potential(1, 1, 40), 1)
+        && t.checkExpect(field.potential(0, 0, 20), 0);
+  }
+
+  // Test that background fish flee bigger fish and chase smaller ones
+  boolean testSteer(Tester t) {
+    FlowField field = new FlowField(800, 600, 50);
+    BackgroundFish small = new BackgroundFish(125, 125, 10, Color.BLUE, 2, true);
+    BackgroundFish big = new BackgroundFish(125, 175, 40, Color.RED, 3, false);
+    field.mark(small);
+    field.mark(big);
+    BackgroundFish fleeing = small.steer(field);
+    BackgroundFish chasing = big.steer(field);
+    BackgroundFish alone = new BackgroundFish(600, 500, 20, Color.GREEN, 1, true).steer(field);
+    field.mark(new BackgroundFish(375, 425, 30, Color.RED, 1, false));
+    BackgroundFish turning = new BackgroundFish(325, 425, 20, Color.GREEN, 1, true).steer(field);
+    return t.checkExpect(fleeing.y, 123) && t.checkExpect(fleeing.movingRight, true)
+        && t.checkExpect(chasing.y, 172) && t.checkExpect(chasing.movingRight, false)
+        && t.checkExpect(alone.y, 500) && t.checkExpect(alone.movingRight, true)
+        && t.checkExpect(turning.y, 425) && t.checkExpect(turning.movingRight, false);
+  }
+
+  // Test that a fast player touches a snack it passes over even when both ends of its step miss
+  boolean testSweptTouching(Tester t) {
+    PlayerFish fast = new PlayerFish(140, 100, 20, 40, 0, 0, 40, 0);
+    PlayerFish still = new PlayerFish(140, 100, 20);
+    SizeSnack passed = new SizeSnack(120, 100);
+    SizeSnack aside = new SizeSnack(120, 130);
+    return t.checkExpect(fast.isTouching(fast.x - passed.x, fast.y - passed.y, passed.size),
+        false)
+        && t.checkExpect(fast.sweptTouching(passed.x, passed.y, passed.size, 0, 0), true)
+        && t.checkExpect(fast.sweptTouching(aside.x, aside.y, aside.size, 0, 0), false)
+        && t.checkExpect(still.sweptTouching(passed.x, passed.y, passed.size, 0, 0), false)
+        && t.checkExpect(still.sweptTouching(130, 100, 10, 0, 0), true);
+  }
+
+  // Test that the sweep follows the other fish's motion too: a fish crossing the player's path
+  // is touched mid-tick even though it would be missed if it stayed at its end position
+  boolean testSweptRelativeMotion(Tester t) {
+    PlayerFish fast = new PlayerFish(148, 100, 20, 48, 0, 0, 48, 0);
+    BackgroundFish crossing = new BackgroundFish(124, 83, 10, Color.RED, 0, true, 0, -12);
+    FlowField field = new FlowField(800, 600, 50);
+    field.mark(new BackgroundFish(125, 175, 40, Color.GRAY, 1, true));
+    BackgroundFish steered = new BackgroundFish(125, 125, 10, Color.RED, 2, true).steer(field)
+        .move();
+    CollisionResult result = new MtLoFish().add(crossing).checkCollisions(fast);
+    return t.checkExpect(fast.sweptTouching(crossing.x, crossing.y, crossing.size, 0, 0), false)
+        && t.checkExpect(fast.sweptTouching(crossing.x, crossing.y, crossing.size,
+            crossing.stepX, crossing.stepY), true)
+        && t.checkExpect(result.remainingFish, new MtLoFish())
+        && t.checkExpect(steered.stepX, 2) && t.checkExpect(steered.stepY, -2);
+  }
+
+  // Test that the sweep uses the whole pixels the player actually moved, not its velocity
+  boolean testPlayerStep(Tester t) {
+    PlayerFish drifting = new PlayerFish(100, 100, 20, 0.6, 0, 0).moveWithInertia();
+    PlayerFish moving = new PlayerFish(100, 100, 20, 5.5, -3.5, 0).moveWithInertia()
+        .wrapAround(800, 600).grow(2).applySpeedBoost();
+    return t.checkExpect(drifting.x, 100) && t.checkExpect(drifting.stepX, 0)
+        && t.checkExpect(drifting.sweptTouching(85, 100, 10, 0, 0), false)
+        && t.checkExpect(moving.x, 105) && t.checkExpect(moving.y, 96)
+        && t.checkExpect(moving.stepX, 5) && t.checkExpect(moving.stepY, -4);
+  }
+
+  // Test that collision checks catch fish and snacks passed over during a fast step
+  boolean testSweptCollisions(Tester t) {
+    PlayerFish fast = new PlayerFish(140, 100, 20, 40, 0, 0, 40, 0);
+    ILoFish fish = new MtLoFish().add(new BackgroundFish(118, 100, 10, Color.RED, 1, true));
+    ILoSnack snacks = new MtLoSnack().add(new SpeedSnack(122, 100));
+    CollisionResult collision = fish.checkCollisions(fast);
+    SnackResult snack = snacks.checkSnacks(fast);
+    return t.checkExpect(collision.remainingFish, new MtLoFish())
+        && t.checkExpect(collision.player.size, 22)
+        && t.checkExpect(collision.pointsGained, 20)
+        && t.checkExpect(snack.remainingSnacks, new MtLoSnack())
+        && t.checkExpect(snack.player.speedBoostTimer, 300);
+  }
+
   // Run the game with bigBang
   boolean testGame(Tester t) {
     FeedingFrenzyWorld world = new FeedingFrenzyWorld();